@@ -5,18 +5,24 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.SolrException;
 
 /**
  * A simple utility class for posting (zipped) xml updates to a SolrCloud cluster, 
@@ -30,6 +36,17 @@ public class CloudPostTool {
   private static final String DEFAULT_COMMIT = "yes";
   private static final String DEFAULT_OPTIMIZE = "no";
   private static final String DEFAULT_FILE_TYPES = "xml,zip,gz";
+  private static final String DEFAULT_SINK = "cloud";
+  private static final String DEFAULT_SINK_DIR = "batches";
+  private static final int DEFAULT_STUB_LATENCY = 0;
+  private static final double DEFAULT_STUB_ERROR_RATE = 0.0;
+  private static final double DEFAULT_STUB_DROP_RATE = 0.0;
+  private static final int DEFAULT_NUMBER_OF_NODES = 1;
+  private static final int DEFAULT_NODE = 0;
+  private static final String DEFAULT_PARTITION = "hash";
+  private static final int DEFAULT_LEASE_TIMEOUT_SECONDS = 300; //a node that did not refresh its leases for 5 minutes is considered dead
+  private static final int LEASE_POLL_INTERVAL_MILLIS = 5000;
+  private static final String DEFAULT_VALIDATE = "no";
   private static final int DEFAULT_MULTIDOC_BATCH_SIZE = 5000; //to lower memory requirements, post multidoc-files in batches of 5k documents
   private static final int DEFAULT_COMMIT_WITHIN_SECONDS = 120; //commit updates within 2 minutes
   private static final String VERSION_OF_THIS_TOOL = "5.0.7";  // TODO: hardcoded for now, but eventually to sync with actual Solr version
@@ -42,10 +59,14 @@ public class CloudPostTool {
   boolean optimize;
   String collection;
   String[] args;
-  CloudSolrClient solrClient;
+  UpdateSink sink;
   XMLInputFactory xmlInputFactory;
   ExecutorService indexerPool;
   FileFilter fileFilter;
+  WorkPartitioner partitioner;
+  SchemaValidator validator;
+  final Set<File> pendingFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+  final AtomicInteger filesInFlight = new AtomicInteger();
   
   static final String USAGE_STRING_SHORT =
       "Usage: java [SystemProperties] -jar cloudpost.jar [-h] [<file|folder> [<file|folder>...]]";
@@ -70,15 +91,23 @@ public class CloudPostTool {
   public void execute() {
     final long startTime = System.currentTimeMillis();
 
-    info("Posting files to SolrCloud cluster zk " + this.solrClient.getZkHost());
+    info("Posting files to " + this.sink);
+    if (partitioner != null) {
+      info("Running as " + partitioner.getNodeName() + (partitioner.usesLeases() ? " with leases" : " with static partition"));
+      partitioner.start();
+    }
 	int numFilesPosted = postFiles(this.args);
+	if (partitioner != null) partitioner.stop();
 	info(numFilesPosted + " files indexed.");
+	if (partitioner != null && partitioner.getFailedCount() > 0) {
+	  warn(partitioner.getFailedCount() + " files failed.");
+	}
     
     if (commit) commit();
     if (optimize) optimize();
     displayTiming(System.currentTimeMillis() - startTime);
     
-    try { solrClient.close(); } catch (IOException ignore) {}
+    try { sink.close(); } catch (IOException ignore) {}
   }
   
   /**
@@ -111,8 +140,101 @@ public class CloudPostTool {
 	  int commitWithin = Integer.parseInt(System.getProperty("commitwithin", String.valueOf(DEFAULT_COMMIT_WITHIN_SECONDS)));
 	  boolean commit = isOn(System.getProperty("commit",DEFAULT_COMMIT));
 	  boolean optimize = isOn(System.getProperty("optimize",DEFAULT_OPTIMIZE));
+	  UpdateSink sink = createSink(System.getProperty("sink", DEFAULT_SINK), collection, zkHost, routeField);
+	  
+	  CloudPostTool tool = new CloudPostTool(collection, sink, delay, numOfThreads, multiDocBatchSize, commit, commitWithin, optimize, args);
+	  tool.setWorkPartitioner(createPartitioner());
+	  if (isOn(System.getProperty("validate", DEFAULT_VALIDATE))) {
+		  tool.setSchemaValidator(fetchSchemaValidator(sink, collection, zkHost));
+	  }
+	  return tool;
+  }
+
+  /**
+   * Fetches the schema of the collection once, through the cluster client of the sink if it has one
+   * @return the SchemaValidator for the collection
+   */
+  protected static SchemaValidator fetchSchemaValidator(UpdateSink sink, String collection, String zkHost) {
+	  info("Fetching schema of collection " + collection);
+	  CloudSolrClient schemaClient = sink instanceof CloudUpdateSink ? ((CloudUpdateSink) sink).getSolrClient() : new CloudSolrClient(zkHost);
+	  try {
+		  return SchemaValidator.fetch(schemaClient, collection);
+	  } catch (SolrServerException|IOException|SolrException e) {
+		  fatal("Cannot fetch schema of collection " + collection + ": " + e);
+		  return null;
+	  } finally {
+		  if (!(sink instanceof CloudUpdateSink)) {
+			  try { schemaClient.close(); } catch (IOException ignore) {}
+		  }
+	  }
+  }
+
+  /**
+   * Creates the work partitioner for cluster mode from the "nodes", "node" and "partition" system properties
+   * @return the WorkPartitioner, or null when running as a single node without leases
+   */
+  protected static WorkPartitioner createPartitioner() {
+	  int numOfNodes = Integer.parseInt(System.getProperty("nodes", String.valueOf(DEFAULT_NUMBER_OF_NODES)));
+	  int node = Integer.parseInt(System.getProperty("node", String.valueOf(DEFAULT_NODE)));
+	  String partition = System.getProperty("partition", DEFAULT_PARTITION);
+	  File leaseDir = null;
+	  if ("lease".equals(partition)) {
+		  String leaseDirName = System.getProperty("leasedir");
+		  if (leaseDirName == null) {
+			  fatal("Specifying the lease directory is mandatory for partition 'lease'.\n" + USAGE_STRING_SHORT);
+		  }
+		  leaseDir = new File(leaseDirName);
+	  } else if (!"hash".equals(partition)) {
+		  fatal("Unknown partition '" + partition + "'.\n" + USAGE_STRING_SHORT);
+	  }
+	  if (numOfNodes == 1 && leaseDir == null) return null;
 	  
-	  return new CloudPostTool(collection, zkHost, routeField, delay, numOfThreads, multiDocBatchSize, commit, commitWithin, optimize, args);
+	  int leaseTimeout = Integer.parseInt(System.getProperty("leasetimeout", String.valueOf(DEFAULT_LEASE_TIMEOUT_SECONDS)));
+	  try {
+		  return new WorkPartitioner(node, numOfNodes, leaseDir, leaseTimeout);
+	  } catch (IOException|IllegalArgumentException e) {
+		  fatal("Cannot run as node " + node + " of " + numOfNodes + ": " + e.getMessage());
+		  return null;
+	  }
+  }
+
+  /**
+   * Creates the target for the update batches from the "sink" system property and its related properties
+   * @param sinkType one of "cloud", "null", "file", "http" or "stub"
+   * @return the UpdateSink to post to
+   */
+  protected static UpdateSink createSink(String sinkType, String collection, String zkHost, String routeField) {
+	  try {
+		  switch (sinkType) {
+			  case "cloud":
+				  return new CloudUpdateSink(zkHost, collection, routeField);
+			  case "null":
+				  return new NullUpdateSink();
+			  case "file":
+				  return new FileUpdateSink(new File(System.getProperty("sinkdir", DEFAULT_SINK_DIR)));
+			  case "http":
+				  String url = System.getProperty("url");
+				  if (url == null) {
+					  fatal("Specifying the url is mandatory for sink 'http'.\n" + USAGE_STRING_SHORT);
+				  }
+				  return new HttpUpdateSink(url);
+			  case "stub":
+				  StubSolrServer stubServer = new StubSolrServer(
+						  Integer.parseInt(System.getProperty("stubport", "0")),
+						  collection,
+						  Integer.parseInt(System.getProperty("stublatency", String.valueOf(DEFAULT_STUB_LATENCY))),
+						  Double.parseDouble(System.getProperty("stuberrorrate", String.valueOf(DEFAULT_STUB_ERROR_RATE))),
+						  Double.parseDouble(System.getProperty("stubdroprate", String.valueOf(DEFAULT_STUB_DROP_RATE))));
+				  stubServer.start();
+				  return new HttpUpdateSink(stubServer);
+			  default:
+				  fatal("Unknown sink '" + sinkType + "'.\n" + USAGE_STRING_SHORT);
+				  return null;
+		  }
+	  } catch (IOException e) {
+		  fatal("Cannot create sink '" + sinkType + "': " + e);
+		  return null;
+	  }
   }
 
   /**
@@ -130,12 +252,27 @@ public class CloudPostTool {
    * @param args : a String[] of file/directory arguments
    */
   public CloudPostTool(String collection, String zkHost, String routeField, int delay, int numOfThreads, int multiDocBatchSize,
+      boolean commit, int commitWithin, boolean optimize, String[] args) {
+    this(collection, new CloudUpdateSink(zkHost, collection, routeField), delay, numOfThreads, multiDocBatchSize, commit, commitWithin, optimize, args);
+  }
+
+  /**
+   * Constructor which posts to the given sink instead of directly to a SolrCloud cluster.
+   * @param collection : the Solr collection
+   * @param sink : the target for the update batches
+   * @param delay : if recursive then delay will be the wait time between posts
+   * @param numOfThreads : number of threads to use (only used for posting directory/multiple files)
+   * @param multiDocBatchSize : size of the update-batches for multi-doc files
+   * @param commit : if true, will commit at end of posting
+   * @param commitWithin : the commit-within interval (in seconds) to use for each post
+   * @param optimize : if true, will optimize at end of posting
+   * @param args : a String[] of file/directory arguments
+   */
+  public CloudPostTool(String collection, UpdateSink sink, int delay, int numOfThreads, int multiDocBatchSize,
       boolean commit, int commitWithin, boolean optimize, String[] args) {
 	   
 	this.collection = collection;
-    this.solrClient = new CloudSolrClient(zkHost);
-	this.solrClient.setDefaultCollection(collection);
-	this.solrClient.setIdField(routeField);
+	this.sink = sink;
 	
 	this.indexerPool = Executors.newFixedThreadPool(numOfThreads);
 	this.xmlInputFactory = XMLInputFactory.newInstance();
@@ -149,6 +286,22 @@ public class CloudPostTool {
   }
 
   public CloudPostTool() {}
+
+  /**
+   * Makes this tool post only its share of the files when running as one of several nodes (see WorkPartitioner).
+   * @param partitioner : the work partitioner, or null to post all files
+   */
+  public void setWorkPartitioner(WorkPartitioner partitioner) {
+    this.partitioner = partitioner;
+  }
+
+  /**
+   * Makes this tool validate (and convert) all documents against the collection's schema before posting them.
+   * @param validator : the schema validator, or null to post all documents as-is
+   */
+  public void setSchemaValidator(SchemaValidator validator) {
+    this.validator = validator;
+  }
   
 
   private static void usage() {
@@ -163,8 +316,27 @@ public class CloudPostTool {
      "  -Dcommit=yes|no (default=" + DEFAULT_COMMIT + ")\n"+
      "  -commitWithin=<Commit-within interval (in seconds) used for posting updates> (default=" + DEFAULT_COMMIT_WITHIN_SECONDS + ")\n"+
      "  -Doptimize=yes|no (default=" + DEFAULT_OPTIMIZE + ")\n"+
+     "  -Dsink=cloud|null|file|http|stub (default=" + DEFAULT_SINK + ")\n"+
+     "     cloud: post to the SolrCloud cluster, null: discard all batches, file: write batches as xml to -Dsinkdir,\n"+
+     "     http: post to the single Solr core at -Durl, stub: post to an embedded local Solr stand-in\n"+
+     "  -Dsinkdir=<Output directory for sink 'file'> (default=" + DEFAULT_SINK_DIR + ")\n"+
+     "  -Durl=<Solr core url for sink 'http', e.g. http://localhost:8983/solr/collection1>\n"+
+     "  -Dstubport=<Local port for sink 'stub'> (default=any free port)\n"+
+     "  -Dstublatency=<Response time (in milliseconds) of sink 'stub'> (default=" + DEFAULT_STUB_LATENCY + ")\n"+
+     "  -Dstuberrorrate=<Fraction of requests answered with an error by sink 'stub'> (default=" + DEFAULT_STUB_ERROR_RATE + ")\n"+
+     "  -Dstubdroprate=<Fraction of connections dropped by sink 'stub'> (default=" + DEFAULT_STUB_DROP_RATE + ")\n"+
+     "  -Dnodes=<Number of instances sharing the input files> (default=" + DEFAULT_NUMBER_OF_NODES + ")\n"+
+     "  -Dnode=<Number of this instance, 0 to nodes-1> (default=" + DEFAULT_NODE + ")\n"+
+     "  -Dpartition=hash|lease (default=" + DEFAULT_PARTITION + ")\n"+
+     "     hash: post only the files whose path hashes to this node, lease: also take over unfinished files of other\n"+
+     "     (dead) nodes, using lock files in -Dleasedir on the shared filesystem\n"+
+     "  -Dleasedir=<Shared directory for lease files, mandatory for partition 'lease'>\n"+
+     "  -Dleasetimeout=<Time (in seconds, at least 3) after which the lease of a dead node is taken over> (default=" + DEFAULT_LEASE_TIMEOUT_SECONDS + ")\n"+
+     "  -Dvalidate=yes|no (default=" + DEFAULT_VALIDATE + ")\n"+
+     "     check documents against the collection's schema before posting, skipping invalid ones\n"+
      "This is a simple command line tool for POSTing (zipped) xml files to a SolrCloud cluster.\n"+
-     "NOTE: Specifying the collection is mandatory.");
+     "NOTE: Specifying the collection is mandatory.\n"+
+     "NOTE: In cluster mode, all nodes must be started with the same <file|folder> arguments.");
   }
 
   /** Post all filenames provided in args
@@ -192,6 +364,9 @@ public class CloudPostTool {
         filesPosted += postFiles(parent.listFiles(ff));
       }
     }
+    if (partitioner != null && partitioner.usesLeases()) {
+      awaitUnfinishedFiles();
+    }
     
     indexerPool.shutdown();
     try {
@@ -200,6 +375,7 @@ public class CloudPostTool {
 		fatal("Execution of threads interrupted: " + e);
 	}
     
+    if (partitioner != null) return partitioner.getDoneCount();
     return filesPosted;
   }
   
@@ -258,13 +434,67 @@ public class CloudPostTool {
     int filesPosted = 0;
     for(File file : files) {
         if(!file.isFile() || file.isHidden()) continue;
-        SolrUpdateRunner updater = new SolrUpdateRunner(this.solrClient, this.xmlInputFactory, file, delay, this.multiDocBatchSize, this.commitWithin);
+        if (partitioner != null) {
+          if (partitioner.isOwnPartition(file)) {
+            postPartitionedFile(file);
+          } else if (partitioner.usesLeases()) {
+            pendingFiles.add(file); //may be taken over later
+          }
+          continue;
+        }
+        SolrUpdateRunner updater = new SolrUpdateRunner(this.sink, this.xmlInputFactory, file, delay, this.multiDocBatchSize, this.commitWithin, this.validator);
         indexerPool.execute(updater);
         filesPosted++;
     }
     return filesPosted;
   }
 
+  /**
+   * Queues a file in cluster mode; the file is claimed only when an indexer thread picks it up,
+   * so this node does not hold leases on files it has not started on yet
+   */
+  private void postPartitionedFile(final File file) {
+    final SolrUpdateRunner updater = new SolrUpdateRunner(this.sink, this.xmlInputFactory, file, delay, this.multiDocBatchSize, this.commitWithin, this.validator);
+    filesInFlight.incrementAndGet();
+    indexerPool.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (partitioner.claim(file)) {
+            updater.run();
+            partitioner.release(file, updater.isSucceeded());
+          } else if (!partitioner.isFinished(file) && !partitioner.hasFailed(file)) {
+            pendingFiles.add(file); //leased by another node, which may still die
+          }
+        } finally {
+          filesInFlight.decrementAndGet();
+        }
+      }
+    });
+  }
+
+  /**
+   * In lease mode, keeps picking up files that are neither finished nor leased by a live node,
+   * until all files are finished or have failed on this node
+   */
+  private void awaitUnfinishedFiles() {
+    while (!pendingFiles.isEmpty() || filesInFlight.get() > 0) {
+      for (File file : new ArrayList<>(pendingFiles)) {
+        if (partitioner.isFinished(file) || partitioner.hasFailed(file)) {
+          pendingFiles.remove(file);
+        } else if (partitioner.isClaimable(file)) {
+          pendingFiles.remove(file);
+          postPartitionedFile(file);
+        }
+      }
+      try {
+        Thread.sleep(LEASE_POLL_INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        fatal("Waiting for unfinished files interrupted: " + e);
+      }
+    }
+  }
+
 
   /**
    * Tests if a string is either "true", "on", "yes" or "1"
@@ -294,7 +524,7 @@ public class CloudPostTool {
   public void commit() {
     info("COMMITting Solr index changes...");
     try {
-    	this.solrClient.commit();
+    	this.sink.commit();
     } catch (SolrServerException|IOException e) {
     	warn("Exception running COMMIT: " + e);
 	}
@@ -306,7 +536,7 @@ public class CloudPostTool {
   public void optimize() {
     info("Performing an OPTIMIZE...");
     try {
-    	this.solrClient.optimize();
+    	this.sink.optimize();
     } catch (SolrServerException|IOException e) {
     	warn("Exception running OPTIMIZE: " + e);
 	}
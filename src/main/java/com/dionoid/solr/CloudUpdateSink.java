@@ -0,0 +1,50 @@
+package com.dionoid.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+
+import java.io.IOException;
+
+/**
+ * Sends update batches to a SolrCloud cluster, routing documents to their shard leaders.
+ */
+public class CloudUpdateSink implements UpdateSink {
+
+    private final CloudSolrClient solrClient;
+
+    public CloudUpdateSink(String zkHost, String collection, String routeField) {
+        this.solrClient = new CloudSolrClient(zkHost);
+        this.solrClient.setDefaultCollection(collection);
+        this.solrClient.setIdField(routeField);
+    }
+
+    public CloudSolrClient getSolrClient() {
+        return this.solrClient;
+    }
+
+    @Override
+    public void send(UpdateRequest updateRequest) throws SolrServerException, IOException {
+        this.solrClient.request(updateRequest);
+    }
+
+    @Override
+    public void commit() throws SolrServerException, IOException {
+        this.solrClient.commit();
+    }
+
+    @Override
+    public void optimize() throws SolrServerException, IOException {
+        this.solrClient.optimize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.solrClient.close();
+    }
+
+    @Override
+    public String toString() {
+        return "SolrCloud cluster zk " + this.solrClient.getZkHost();
+    }
+}
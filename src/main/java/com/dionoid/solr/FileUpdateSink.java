@@ -0,0 +1,65 @@
+package com.dionoid.solr;
+
+import org.apache.solr.client.solrj.request.UpdateRequest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes every update batch as Solr update xml to its own file in an output directory
+ * (batch-000001.xml, batch-000002.xml, ...), so the batches can be inspected or diffed offline.
+ * As a batch can hold both adds and deletes, each file is wrapped in an &lt;update&gt; root element,
+ * which keeps it well-formed and lets the files be posted again with this tool.
+ * Existing files are never overwritten: numbers already taken, by an earlier run or by another
+ * node sharing the directory, are skipped.
+ * Commit and optimize are no-ops.
+ */
+public class FileUpdateSink implements UpdateSink {
+
+    private final File dir;
+    private final AtomicLong batchNumber = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+
+    public FileUpdateSink(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + dir);
+        }
+        this.dir = dir;
+    }
+
+    @Override
+    public void send(UpdateRequest updateRequest) throws IOException {
+        File batchFile;
+        do {
+            batchFile = new File(this.dir, String.format("batch-%06d.xml", this.batchNumber.incrementAndGet()));
+        } while (!batchFile.createNewFile());
+        this.batchCount.incrementAndGet();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(batchFile), StandardCharsets.UTF_8))) {
+            writer.write("<" + SolrUpdateRunner.UPDATE + ">");
+            updateRequest.writeXML(writer);
+            writer.write("</" + SolrUpdateRunner.UPDATE + ">");
+        }
+    }
+
+    @Override
+    public void commit() {}
+
+    @Override
+    public void optimize() {}
+
+    @Override
+    public void close() {
+        System.out.println("File sink wrote " + this.batchCount.get() + " batches to " + this.dir);
+    }
+
+    @Override
+    public String toString() {
+        return "file sink " + this.dir;
+    }
+}
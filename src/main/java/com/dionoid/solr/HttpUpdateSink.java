@@ -0,0 +1,58 @@
+package com.dionoid.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.impl.XMLResponseParser;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+
+import java.io.IOException;
+
+/**
+ * Sends update batches over plain HTTP to a single Solr core, e.g. a standalone Solr node
+ * or an embedded {@link StubSolrServer} (which is then stopped when this sink is closed).
+ */
+public class HttpUpdateSink implements UpdateSink {
+
+    private final HttpSolrClient solrClient;
+    private final StubSolrServer stubServer;
+
+    public HttpUpdateSink(String baseUrl) {
+        this(baseUrl, null);
+    }
+
+    public HttpUpdateSink(StubSolrServer stubServer) {
+        this(stubServer.getBaseUrl(), stubServer);
+    }
+
+    private HttpUpdateSink(String baseUrl, StubSolrServer stubServer) {
+        this.solrClient = new HttpSolrClient(baseUrl);
+        this.solrClient.setParser(new XMLResponseParser());
+        this.stubServer = stubServer;
+    }
+
+    @Override
+    public void send(UpdateRequest updateRequest) throws SolrServerException, IOException {
+        this.solrClient.request(updateRequest);
+    }
+
+    @Override
+    public void commit() throws SolrServerException, IOException {
+        this.solrClient.commit();
+    }
+
+    @Override
+    public void optimize() throws SolrServerException, IOException {
+        this.solrClient.optimize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.solrClient.close();
+        if (this.stubServer != null) this.stubServer.stop();
+    }
+
+    @Override
+    public String toString() {
+        return (this.stubServer != null ? "stub Solr server " : "Solr core ") + this.solrClient.getBaseURL();
+    }
+}
@@ -0,0 +1,35 @@
+package com.dionoid.solr;
+
+import org.apache.solr.client.solrj.request.UpdateRequest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Discards all update batches, only counting them.
+ * Useful for measuring the maximum read/parse throughput of the tool itself.
+ */
+public class NullUpdateSink implements UpdateSink {
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    @Override
+    public void send(UpdateRequest updateRequest) {
+        this.batchCount.incrementAndGet();
+    }
+
+    @Override
+    public void commit() {}
+
+    @Override
+    public void optimize() {}
+
+    @Override
+    public void close() {
+        System.out.println("Null sink discarded " + this.batchCount.get() + " batches");
+    }
+
+    @Override
+    public String toString() {
+        return "null sink";
+    }
+}
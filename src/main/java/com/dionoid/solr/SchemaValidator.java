@@ -0,0 +1,326 @@
+package com.dionoid.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.schema.FieldTypeDefinition;
+import org.apache.solr.client.solrj.request.schema.SchemaRequest;
+import org.apache.solr.client.solrj.response.schema.SchemaRepresentation;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Client-side validator for documents, compiled once from the schema of the target collection.
+ * Rejects documents with unknown fields, multiple values for single-valued fields, bad numeric/date values,
+ * or a missing uniqueKey/required field, so a single bad document does not make Solr reject a whole batch.
+ * Like Solr, a required field is also satisfied by a copyField into it from a field present in the document.
+ * Numeric, date and boolean values are converted to their Java types, so Solr has less parsing to do.
+ * Thread-safe, a single validator is shared by all indexer threads.
+ */
+public class SchemaValidator {
+
+    private static final Pattern ISO_DATE = Pattern.compile("(\\d{4})-(\\d{2})-(\\d{2})T(\\d{2}):(\\d{2}):(\\d{2})(?:\\.(\\d+))?Z");
+    //Solr's DateMathParser syntax, e.g. +1DAY, -6MONTHS or /HOUR
+    private static final String DATE_MATH_UNIT = "(?:YEARS?|MONTHS?|DAYS?|DATE|HOURS?|MINUTES?|SECONDS?|MILLIS?|MILLISECONDS?)";
+    private static final Pattern DATE_MATH = Pattern.compile("(?:[+-]\\d+" + DATE_MATH_UNIT + "|/" + DATE_MATH_UNIT + ")*");
+    private static final String REMOVE_REGEX = "removeregex";
+
+    private static final ThreadLocal<Calendar> UTC_CALENDAR = new ThreadLocal<Calendar>() {
+        @Override
+        protected Calendar initialValue() {
+            Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.ROOT);
+            calendar.setLenient(false);
+            return calendar;
+        }
+    };
+
+    enum Kind { INT, LONG, FLOAT, DOUBLE, DATE, BOOLEAN, OTHER }
+
+    static class FieldRule {
+        final String name;
+        final Kind kind;
+        final boolean multiValued;
+        final int order; //declaration index, breaks ties between dynamic field patterns of the same length
+
+        FieldRule(String name, Kind kind, boolean multiValued, int order) {
+            this.name = name;
+            this.kind = kind;
+            this.multiValued = multiValued;
+            this.order = order;
+        }
+    }
+
+    private final String uniqueKey;
+    private final Map<String, FieldRule> fields = new HashMap<>();
+    private final Map<String, FieldRule> dynamicPrefixes = new HashMap<>(); //"attr_*" -> "attr_"
+    private final Map<String, FieldRule> dynamicSuffixes = new HashMap<>(); //"*_i" -> "_i"
+    private final int[] dynamicLengths; //distinct lengths of the prefixes/suffixes, longest first
+    private final Map<String, List<String>> requiredFields = new LinkedHashMap<>(); //required field -> copyField sources into it
+
+    /**
+     * Fetches the schema of a collection through the Schema API
+     * @param solrClient : client connected to the cluster
+     * @param collection : the Solr collection
+     * @return the validator for the schema of the collection
+     */
+    public static SchemaValidator fetch(SolrClient solrClient, String collection) throws SolrServerException, IOException {
+        return new SchemaValidator(new SchemaRequest().process(solrClient, collection).getSchemaRepresentation());
+    }
+
+    public SchemaValidator(SchemaRepresentation schema) {
+        Map<String, Map<String, Object>> fieldTypes = new HashMap<>();
+        for (FieldTypeDefinition fieldType : schema.getFieldTypes()) {
+            fieldTypes.put((String) fieldType.getAttributes().get("name"), fieldType.getAttributes());
+        }
+        int order = 0;
+        for (Map<String, Object> field : schema.getFields()) {
+            FieldRule rule = compile(field, fieldTypes, order++);
+            this.fields.put(rule.name, rule);
+            if (isTrue(field.get("required")) && field.get("default") == null) {
+                this.requiredFields.put(rule.name, new ArrayList<String>());
+            }
+        }
+        //Solr checks required fields after copyField processing, so a copy from a field in the document satisfies them
+        for (Map<String, Object> copyField : schema.getCopyFields()) {
+            List<String> sources = this.requiredFields.get(copyField.get("dest"));
+            if (sources != null) sources.add((String) copyField.get("source"));
+        }
+        Set<Integer> lengths = new TreeSet<>(Collections.reverseOrder());
+        order = 0;
+        for (Map<String, Object> dynamicField : schema.getDynamicFields()) {
+            FieldRule rule = compile(dynamicField, fieldTypes, order++);
+            String pattern = rule.name;
+            if (pattern.startsWith("*")) {
+                this.dynamicSuffixes.put(pattern.substring(1), rule);
+            } else if (pattern.endsWith("*")) {
+                this.dynamicPrefixes.put(pattern.substring(0, pattern.length() - 1), rule);
+            } else {
+                continue;
+            }
+            lengths.add(pattern.length() - 1);
+        }
+        //like Solr, match the longest dynamic field pattern first, and the first declared one of the same length
+        this.dynamicLengths = new int[lengths.size()];
+        int i = 0;
+        for (int length : lengths) this.dynamicLengths[i++] = length;
+        this.uniqueKey = schema.getUniqueKey();
+    }
+
+    /**
+     * Validates a document (and its child documents) against the schema, converting field values in place
+     * @param doc the document read from the update xml
+     * @throws SolrException (BAD_REQUEST) if Solr would reject the document
+     */
+    public void validate(SolrInputDocument doc) {
+        boolean isAtomicUpdate = false;
+        for (SolrInputField field : doc) {
+            FieldRule rule = getRule(field.getName());
+            if (rule == null) {
+                throw invalid(doc, "unknown field '" + field.getName() + "'");
+            }
+            if (field.getValueCount() > 1 && !rule.multiValued) {
+                throw invalid(doc, "multiple values for non-multiValued field '" + field.getName() + "'");
+            }
+            List<Object> values = new ArrayList<>(field.getValueCount());
+            for (Object value : field) {
+                if (value instanceof Map) {
+                    isAtomicUpdate = true;
+                    values.add(convertUpdate(doc, rule, value));
+                } else {
+                    values.add(convert(doc, rule, value));
+                }
+            }
+            if (values.size() == 1) {
+                field.setValue(values.get(0), field.getBoost());
+            } else if (values.size() > 1) {
+                field.setValue(values, field.getBoost());
+            }
+        }
+
+        if (this.uniqueKey != null && doc.getFieldValue(this.uniqueKey) == null) {
+            throw invalid(doc, "missing uniqueKey field '" + this.uniqueKey + "'");
+        }
+        if (!isAtomicUpdate) { //atomic updates are merged with the stored document by Solr
+            for (Map.Entry<String, List<String>> requiredField : this.requiredFields.entrySet()) {
+                if (doc.getFieldValue(requiredField.getKey()) == null && !hasAnyField(doc, requiredField.getValue())) {
+                    throw invalid(doc, "missing required field '" + requiredField.getKey() + "'");
+                }
+            }
+        }
+        if (doc.hasChildDocuments()) {
+            for (SolrInputDocument childDoc : doc.getChildDocuments()) {
+                validate(childDoc);
+            }
+        }
+    }
+
+    private FieldRule getRule(String name) {
+        FieldRule rule = this.fields.get(name);
+        if (rule != null) return rule;
+        for (int length : this.dynamicLengths) {
+            if (length > name.length()) continue;
+            FieldRule prefixRule = this.dynamicPrefixes.get(name.substring(0, length));
+            FieldRule suffixRule = this.dynamicSuffixes.get(name.substring(name.length() - length));
+            if (prefixRule == null) {
+                if (suffixRule != null) return suffixRule;
+            } else {
+                return suffixRule == null || prefixRule.order < suffixRule.order ? prefixRule : suffixRule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param patterns : field names or copyField source globs ("*_s", "attr_*", "*")
+     * @return true if the document has a value for a field matching any of the patterns
+     */
+    private static boolean hasAnyField(SolrInputDocument doc, List<String> patterns) {
+        for (String pattern : patterns) {
+            if (pattern.indexOf('*') < 0) {
+                if (doc.getFieldValue(pattern) != null) return true;
+                continue;
+            }
+            for (SolrInputField field : doc) {
+                if (field.getValue() != null && matchesGlob(pattern, field.getName())) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesGlob(String pattern, String name) {
+        if (pattern.startsWith("*")) return name.endsWith(pattern.substring(1));
+        if (pattern.endsWith("*")) return name.startsWith(pattern.substring(0, pattern.length() - 1));
+        return pattern.equals(name);
+    }
+
+    /**
+     * Converts the values of an atomic update, e.g. {"set": "12"} or {"add": ["1", "2"]}
+     */
+    private Object convertUpdate(SolrInputDocument doc, FieldRule rule, Object update) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> operations = (Map<String, Object>) update;
+        for (Map.Entry<String, Object> operation : operations.entrySet()) {
+            if (REMOVE_REGEX.equals(operation.getKey())) continue;
+            Object value = operation.getValue();
+            if (value instanceof Collection) {
+                List<Object> converted = new ArrayList<>();
+                for (Object v : (Collection<?>) value) converted.add(convert(doc, rule, v));
+                operation.setValue(converted);
+            } else {
+                operation.setValue(convert(doc, rule, value));
+            }
+        }
+        return operations;
+    }
+
+    private Object convert(SolrInputDocument doc, FieldRule rule, Object value) {
+        if (!(value instanceof String) || rule.kind == Kind.OTHER) return value;
+        String text = ((String) value).trim();
+        try {
+            switch (rule.kind) {
+                case INT:
+                    return Integer.valueOf(text);
+                case LONG:
+                    return Long.valueOf(text);
+                case FLOAT:
+                    return Float.valueOf(text);
+                case DOUBLE:
+                    return Double.valueOf(text);
+                case BOOLEAN:
+                    //same as Solr's BoolField: anything not starting with 1, t or T is false
+                    char ch = text.isEmpty() ? 0 : text.charAt(0);
+                    return ch == '1' || ch == 't' || ch == 'T';
+                case DATE:
+                    return convertDate(text);
+                default:
+                    return value;
+            }
+        } catch (IllegalArgumentException e) { //includes NumberFormatException
+            throw invalid(doc, "invalid " + rule.kind.name().toLowerCase(Locale.ROOT) + " value '" + value + "' for field '" + rule.name + "'");
+        }
+    }
+
+    /**
+     * @return the parsed date, or the text itself when it uses valid date math (resolved by Solr)
+     */
+    private static Object convertDate(String text) {
+        if (text.startsWith("NOW")) {
+            if (DATE_MATH.matcher(text).region(3, text.length()).matches()) return text;
+            throw new IllegalArgumentException(text);
+        }
+        Matcher m = ISO_DATE.matcher(text);
+        if (m.matches()) return parseDate(m);
+        if (m.lookingAt() && DATE_MATH.matcher(text).region(m.end(), text.length()).matches()) {
+            parseDate(m); //the date before the math must be valid too
+            return text;
+        }
+        throw new IllegalArgumentException(text);
+    }
+
+    private static Date parseDate(Matcher m) {
+        Calendar calendar = UTC_CALENDAR.get();
+        calendar.clear();
+        calendar.set(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)) - 1, Integer.parseInt(m.group(3)),
+                Integer.parseInt(m.group(4)), Integer.parseInt(m.group(5)), Integer.parseInt(m.group(6)));
+        String fraction = m.group(7);
+        if (fraction != null) {
+            calendar.set(Calendar.MILLISECOND, Integer.parseInt((fraction + "00").substring(0, 3)));
+        }
+        return calendar.getTime(); //throws IllegalArgumentException for out of range values
+    }
+
+    private static FieldRule compile(Map<String, Object> field, Map<String, Map<String, Object>> fieldTypes, int order) {
+        Map<String, Object> fieldType = fieldTypes.get(field.get("type"));
+        Object multiValued = field.get("multiValued");
+        if (multiValued == null && fieldType != null) multiValued = fieldType.get("multiValued");
+        Kind kind = fieldType == null ? Kind.OTHER : kindOf((String) fieldType.get("class"));
+        return new FieldRule((String) field.get("name"), kind, isTrue(multiValued), order);
+    }
+
+    private static Kind kindOf(String className) {
+        String name = className.substring(className.lastIndexOf('.') + 1);
+        switch (name) {
+            case "TrieIntField": case "IntField": case "IntPointField":
+                return Kind.INT;
+            case "TrieLongField": case "LongField": case "LongPointField":
+                return Kind.LONG;
+            case "TrieFloatField": case "FloatField": case "FloatPointField":
+                return Kind.FLOAT;
+            case "TrieDoubleField": case "DoubleField": case "DoublePointField":
+                return Kind.DOUBLE;
+            case "TrieDateField": case "DateField": case "DatePointField":
+                return Kind.DATE;
+            case "BoolField":
+                return Kind.BOOLEAN;
+            default:
+                return Kind.OTHER;
+        }
+    }
+
+    private static boolean isTrue(Object value) {
+        return value instanceof Boolean ? (Boolean) value : value != null && Boolean.parseBoolean(value.toString());
+    }
+
+    private SolrException invalid(SolrInputDocument doc, String msg) {
+        Object id = this.uniqueKey == null ? null : doc.getFieldValue(this.uniqueKey);
+        return new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Document " + (id == null ? "without id" : "'" + id + "'") + ": " + msg);
+    }
+}
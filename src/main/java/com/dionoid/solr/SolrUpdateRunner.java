@@ -2,7 +2,6 @@ package com.dionoid.solr;
 
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.conn.ConnectTimeoutException;
-import org.apache.solr.client.solrj.impl.CloudSolrClient;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
@@ -27,21 +26,25 @@ public class SolrUpdateRunner implements Runnable{
     public static final String ADD = "add";
     public static final String DELETE = "delete";
     public static final String DOC = "doc";
+    public static final String UPDATE = "update";
    
-    private final CloudSolrClient solrClient;
+    private final UpdateSink sink;
     private final XMLInputFactory inputFactory;
     private final File file;
     private final int delay;
     private final int multiDocBatchSize;
     private final int commitWithin;
+    private final SchemaValidator validator;
+    private volatile boolean succeeded;
     
-    public SolrUpdateRunner(CloudSolrClient solrClient, XMLInputFactory inputFactory, File file, int delay, int multiDocBatchSize, int commitWithin) {
-        this.solrClient = solrClient;
+    public SolrUpdateRunner(UpdateSink sink, XMLInputFactory inputFactory, File file, int delay, int multiDocBatchSize, int commitWithin, SchemaValidator validator) {
+        this.sink = sink;
         this.inputFactory = inputFactory;
         this.file = file;
         this.delay = delay;
         this.multiDocBatchSize = multiDocBatchSize;
         this.commitWithin = commitWithin;
+        this.validator = validator;
     }
     
     @Override
@@ -50,6 +53,7 @@ public class SolrUpdateRunner implements Runnable{
         	System.out.println("READing file " + this.file.getName());
         	int totalUpdates = postBatches();
         	System.out.println("Done POSTing all " + totalUpdates + " updates from " + this.file.getName());
+        	this.succeeded = true;
             if (this.delay > 0) Thread.sleep(this.delay * 1000);
         } catch (Exception e) {
         	if (e instanceof InterruptedException) Thread.currentThread().interrupt();
@@ -58,6 +62,13 @@ public class SolrUpdateRunner implements Runnable{
         }
     }
 
+    /**
+     * @return true if all updates from the file were posted
+     */
+    public boolean isSucceeded() {
+        return this.succeeded;
+    }
+
     protected int postBatches() throws XMLStreamException, IOException {
     	XMLStreamReader parser = null;
 		ZipInputStream zipStream = null;
@@ -82,6 +93,7 @@ public class SolrUpdateRunner implements Runnable{
 	    	List<String> deleteIds = null;
 	    	int docsInBatch = 0;
 	    	int totalDocCount = 0;
+	    	int invalidDocCount = 0;
 
     		while (true) {
     			if (docsInBatch >= this.multiDocBatchSize) {
@@ -95,16 +107,30 @@ public class SolrUpdateRunner implements Runnable{
 	    			case XMLStreamConstants.END_DOCUMENT:
 	    				parser.close();
 	    				totalDocCount += sendBatch(docs, deleteIds, 10, 3);
+	    				if (invalidDocCount > 0) System.err.println("Skipped " + invalidDocCount + " invalid documents from " + filename);
 	    				return totalDocCount;
 	    			case XMLStreamConstants.START_ELEMENT:
 	    				String currTag = parser.getLocalName();
-	    				if (ADD.equals(currTag)) {
+	    				if (UPDATE.equals(currTag)) {
+	    					//root element wrapping adds and deletes, nothing to do
+	    				} else if (ADD.equals(currTag)) {
 	    					if (docs == null) docs = new ArrayList<>();
 	    				} else if (DOC.equals(currTag)) {
 	    					SolrInputDocument doc = SolrXmlLoader.readDoc(parser);
 
 	    					//HACK: set 'assetProduct' field to 'medline'
 	    					doc.setField("assetProduct", "medline");
+	    					
+	    					if (this.validator != null) {
+	    						try {
+	    							this.validator.validate(doc);
+	    						} catch (SolrException e) {
+	    							//skip the bad doc here, rather than have Solr reject the whole batch
+	    							System.err.println("[invalid document in " + filename + "] : " + e.getMessage());
+	    							invalidDocCount++;
+	    							break;
+	    						}
+	    					}
 	    							
 	    					docs.add(doc);
 	    					docsInBatch++;
@@ -137,7 +163,7 @@ public class SolrUpdateRunner implements Runnable{
 			if (numOfDocs == 0) return 0;
             if (docs != null) updateRequest.add(docs);
             if (deleteIds != null) updateRequest.deleteById(deleteIds);
-            solrClient.request(updateRequest);
+            sink.send(updateRequest);
             System.out.println("Succesfully POSTed a batch with " + numOfDocs + " updates from " + filename);
             return numOfDocs;
         } catch (Exception exc) {
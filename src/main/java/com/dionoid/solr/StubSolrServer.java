@@ -0,0 +1,121 @@
+package com.dionoid.solr;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded local HTTP stand-in for Solr's update handler, for repeatable load tests without a live cluster.
+ * Update requests are read completely and then answered like Solr would, after a configurable latency.
+ * Errors can be injected: a fraction of requests is answered with an HTTP 500 Solr error (as for a rejected batch),
+ * and a fraction of connections is dropped without any response (which the runner treats as a communication error and retries).
+ */
+public class StubSolrServer implements HttpHandler {
+
+    private static final String CONTENT_TYPE = "application/xml; charset=UTF-8";
+
+    private final HttpServer server;
+    private final ExecutorService handlerPool;
+    private final String collection;
+    private final int latency;
+    private final double errorRate;
+    private final double dropRate;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong dropCount = new AtomicLong();
+
+    /**
+     * @param port : the local port to listen on (use 0 for any free port)
+     * @param collection : the collection name used in the update url
+     * @param latency : the time (in milliseconds) taken to answer each request
+     * @param errorRate : fraction (0.0 - 1.0) of requests answered with an HTTP 500 error
+     * @param dropRate : fraction (0.0 - 1.0) of requests whose connection is dropped without a response
+     */
+    public StubSolrServer(int port, String collection, int latency, double errorRate, double dropRate) throws IOException {
+        this.collection = collection;
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.dropRate = dropRate;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/solr/" + collection + "/", this);
+        this.handlerPool = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.handlerPool);
+    }
+
+    public void start() {
+        this.server.start();
+        System.out.println("Stub Solr server listening on " + getBaseUrl() + " (latency=" + this.latency + "ms, errorrate="
+                + this.errorRate + ", droprate=" + this.dropRate + ")");
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.handlerPool.shutdown();
+        System.out.println("Stub Solr server handled " + this.requestCount.get() + " requests (" + this.byteCount.get()
+                + " bytes), injected " + this.errorCount.get() + " errors and " + this.dropCount.get() + " dropped connections");
+    }
+
+    /**
+     * @return the url of the stub core, to be used as base url of a HttpSolrClient
+     */
+    public String getBaseUrl() {
+        return "http://" + this.server.getAddress().getHostString() + ":" + this.server.getAddress().getPort() + "/solr/" + this.collection;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            this.requestCount.incrementAndGet();
+            this.byteCount.addAndGet(drain(exchange.getRequestBody()));
+            if (this.latency > 0) Thread.sleep(this.latency);
+
+            double dice = ThreadLocalRandom.current().nextDouble();
+            if (dice < this.dropRate) {
+                this.dropCount.incrementAndGet();
+                return; //closing the exchange without sending headers drops the connection
+            }
+            if (dice < this.dropRate + this.errorRate) {
+                this.errorCount.incrementAndGet();
+                respond(exchange, 500, "<response><lst name=\"error\"><str name=\"msg\">Injected error</str>"
+                        + "<int name=\"code\">500</int></lst></response>");
+            } else {
+                respond(exchange, 200, "<response><lst name=\"responseHeader\"><int name=\"status\">0</int>"
+                        + "<int name=\"QTime\">" + this.latency + "</int></lst></response>");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) total += read;
+        return total;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
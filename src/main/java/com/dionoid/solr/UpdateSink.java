@@ -0,0 +1,32 @@
+package com.dionoid.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Target for the update batches produced by {@link SolrUpdateRunner}.
+ * Besides the real SolrCloud cluster, batches can be sent to offline stand-ins
+ * so ingest throughput can be measured (or problems reproduced) without a live cluster.
+ * Implementations must be thread-safe, as a single sink is shared by all indexer threads.
+ */
+public interface UpdateSink extends Closeable {
+
+    /**
+     * Sends a single update batch
+     * @param updateRequest the batch of added and/or deleted documents
+     */
+    void send(UpdateRequest updateRequest) throws SolrServerException, IOException;
+
+    /**
+     * Commits all updates sent so far
+     */
+    void commit() throws SolrServerException, IOException;
+
+    /**
+     * Optimizes the target index
+     */
+    void optimize() throws SolrServerException, IOException;
+}
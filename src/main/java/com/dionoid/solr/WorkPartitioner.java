@@ -0,0 +1,370 @@
+package com.dionoid.solr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits the input files over several CloudPostTool instances (nodes) that are pointed at the same shared input tree.
+ * All nodes must be started with the same file/folder arguments, as files are identified by their path as given.
+ * <p>
+ * Each file belongs to exactly one node's partition: hash-of-path mod number-of-nodes.
+ * Without a lease directory that is all there is: every node posts its own partition only, and files of a dead node are not posted.
+ * <p>
+ * With a lease directory on the shared filesystem, a node has to take a lease (an atomically created lock file) before posting a file,
+ * and marks the file done (or failed) afterwards. Every lease holds a unique owner token, which is checked before the lease is
+ * refreshed, released or taken over, so a node never touches a lease it does not own.
+ * Leases are kept alive by a heartbeat; a lease that has not been refreshed within the lease timeout belongs to a dead node
+ * and may be taken over. Nodes start with their own partition and then pick up any file that is not done and not leased
+ * by a live node, until all files are done or have failed on this node.
+ * A failed file is retried by the other nodes, and by later runs: re-running with the same lease directory posts all files not done yet.
+ */
+public class WorkPartitioner {
+
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final String DONE_SUFFIX = ".done";
+    private static final String FAILED_SUFFIX = ".failed";
+    private static final int READ_OWNER_ATTEMPTS = 10;
+    private static final long READ_OWNER_RETRY_MILLIS = 100L;
+    private static final int MAX_TAKE_OVER_ATTEMPTS = 5;
+    private static final long MIN_HEARTBEAT_INTERVAL_MILLIS = 1000L;
+    private static final long MAX_HEARTBEAT_INTERVAL_MILLIS = 30000L;
+
+    private final int nodeId;
+    private final int numOfNodes;
+    private final File leaseDir;
+    private final long leaseTimeoutMillis;
+    private final String nodeName;
+
+    private final Map<File, String> heldLeases = new ConcurrentHashMap<>(); //lease file -> owner token
+    private final Set<File> failedFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    private final Map<File, AtomicInteger> failedTakeOvers = new ConcurrentHashMap<>();
+    private final AtomicInteger claimedCount = new AtomicInteger();
+    private final AtomicInteger doneCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final AtomicInteger lostCount = new AtomicInteger();
+    private ScheduledExecutorService heartbeat;
+
+    /**
+     * @param nodeId : the number of this node (0 to numOfNodes-1)
+     * @param numOfNodes : the total number of nodes
+     * @param leaseDir : shared directory for lease files (use null for a static hash partition without failover)
+     * @param leaseTimeout : time (in seconds) after which a lease that was not refreshed may be taken over,
+     *                       at least three heartbeats of the shortest interval
+     */
+    public WorkPartitioner(int nodeId, int numOfNodes, File leaseDir, int leaseTimeout) throws IOException {
+        if (numOfNodes < 1 || nodeId < 0 || nodeId >= numOfNodes) {
+            throw new IllegalArgumentException("Node " + nodeId + " is not in range 0.." + (numOfNodes - 1));
+        }
+        if (leaseDir != null && leaseTimeout * 1000L < 3 * MIN_HEARTBEAT_INTERVAL_MILLIS) {
+            throw new IllegalArgumentException("Lease timeout " + leaseTimeout + "s is shorter than " + (3 * MIN_HEARTBEAT_INTERVAL_MILLIS / 1000) + "s");
+        }
+        if (leaseDir != null && !leaseDir.isDirectory() && !leaseDir.mkdirs()) {
+            throw new IOException("Cannot create lease directory " + leaseDir);
+        }
+        if (leaseDir != null && !leaseDir.canWrite()) {
+            throw new IOException("Cannot write to lease directory " + leaseDir);
+        }
+        this.nodeId = nodeId;
+        this.numOfNodes = numOfNodes;
+        this.leaseDir = leaseDir;
+        this.leaseTimeoutMillis = leaseTimeout * 1000L;
+        this.nodeName = "node " + nodeId + "/" + numOfNodes + " (" + InetAddress.getLocalHost().getHostName() + ")";
+    }
+
+    public boolean usesLeases() {
+        return this.leaseDir != null;
+    }
+
+    /**
+     * @return true if the file belongs to the hash partition of this node
+     */
+    public boolean isOwnPartition(File file) {
+        return (key(file).hashCode() & Integer.MAX_VALUE) % this.numOfNodes == this.nodeId;
+    }
+
+    /**
+     * @return true if the file was posted by any node
+     */
+    public boolean isFinished(File file) {
+        if (!usesLeases()) return false;
+        return new File(this.leaseDir, leaseName(file) + DONE_SUFFIX).exists();
+    }
+
+    /**
+     * @return true if this node failed to post the file (it is not retried by the same node)
+     */
+    public boolean hasFailed(File file) {
+        return this.failedFiles.contains(file);
+    }
+
+    /**
+     * @return true if the file is not finished, not failed on this node, and not leased by a live node
+     */
+    public boolean isClaimable(File file) {
+        if (!usesLeases()) return false;
+        if (isFinished(file) || hasFailed(file)) return false;
+        File lease = new File(this.leaseDir, leaseName(file) + LEASE_SUFFIX);
+        return !lease.exists() || isStale(lease);
+    }
+
+    /**
+     * Takes the lease on a file, taking over a stale lease of a dead node if needed.
+     * If the lease cannot be created because of an I/O error, or a stale lease repeatedly cannot be taken over
+     * (e.g. it is unreadable), the file is marked as failed on this node, so it is not claimed again and again.
+     * @return true if this node may post the file
+     */
+    public boolean claim(File file) {
+        if (!usesLeases()) {
+            this.claimedCount.incrementAndGet();
+            return true;
+        }
+        if (hasFailed(file)) return false;
+        String name = leaseName(file);
+        File lease = new File(this.leaseDir, name + LEASE_SUFFIX);
+        if (isFinished(file)) return false; //avoids creating and deleting leases on files other nodes finished
+        try {
+            if (lease.exists() && isStale(lease) && !takeOver(file, lease)) {
+                failedTakeOver(file);
+                return false;
+            }
+            if (!lease.createNewFile()) return false;
+        } catch (IOException e) {
+            CloudPostTool.warn("[" + this.nodeName + "] Cannot create lease on " + key(file) + ": " + e);
+            if (this.failedFiles.add(file)) this.failedCount.incrementAndGet();
+            return false;
+        }
+        if (isFinished(file)) { //finished by another node between our check and taking the lease
+            lease.delete();
+            return false;
+        }
+        String token = this.nodeName + " " + UUID.randomUUID();
+        writeQuietly(lease, token + "\n" + key(file) + "\n");
+        this.heldLeases.put(lease, token);
+        this.claimedCount.incrementAndGet();
+        return true;
+    }
+
+    private void failedTakeOver(File file) {
+        AtomicInteger attempts = this.failedTakeOvers.get(file);
+        if (attempts == null) {
+            this.failedTakeOvers.putIfAbsent(file, new AtomicInteger());
+            attempts = this.failedTakeOvers.get(file);
+        }
+        if (attempts.incrementAndGet() >= MAX_TAKE_OVER_ATTEMPTS && this.failedFiles.add(file)) {
+            CloudPostTool.warn("[" + this.nodeName + "] Cannot take over stale lease on " + key(file) + ", giving up after " + MAX_TAKE_OVER_ATTEMPTS + " attempts");
+            this.failedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes a stale lease, unless it was refreshed or replaced by another node in the meantime.
+     * The lease is renamed away first and only then checked, so the check is on a file no other node can still change.
+     * @return true if the stale lease was removed
+     */
+    private boolean takeOver(File file, File lease) {
+        String staleOwner = readOwner(lease);
+        long staleModified = lease.lastModified();
+        if (staleOwner == null || !isStale(lease)) return false;
+        File moved = new File(this.leaseDir, lease.getName() + ".stale-" + this.nodeId + "-" + System.nanoTime());
+        if (!lease.renameTo(moved)) return false; //another node got there first
+        if (staleOwner.equals(readOwner(moved)) && moved.lastModified() == staleModified) {
+            CloudPostTool.warn("[" + this.nodeName + "] Taking over stale lease of " + staleOwner + " on " + key(file));
+            moved.delete();
+            return true;
+        }
+        //moved the fresh lease of another node: put it back, unless yet another lease was created meanwhile
+        if (lease.exists() || !moved.renameTo(lease)) moved.delete();
+        return false;
+    }
+
+    /**
+     * Marks a claimed file as done (or failed) and gives up its lease.
+     * If the lease was taken over by another node, the file is left to that node.
+     * If the lease cannot be read (e.g. while another node briefly moves it away to check it), reading is retried;
+     * if it still cannot be read, the file is marked but the lease is left in place to go stale.
+     * @param succeeded : false if posting the file failed (the file is then retried by other nodes, but not by this one)
+     */
+    public void release(File file, boolean succeeded) {
+        if (!succeeded) this.failedFiles.add(file);
+        if (usesLeases()) {
+            String name = leaseName(file);
+            File lease = new File(this.leaseDir, name + LEASE_SUFFIX);
+            String token = this.heldLeases.remove(lease);
+            if (token == null) return; //already reported lost by the heartbeat
+            String owner = readOwnerWithRetry(lease);
+            if (owner != null && !token.equals(owner)) {
+                CloudPostTool.warn("[" + this.nodeName + "] Lost lease on " + key(file) + ", leaving it to the node that took it over");
+                this.lostCount.incrementAndGet();
+                return;
+            }
+            File failedMarker = new File(this.leaseDir, name + FAILED_SUFFIX);
+            if (succeeded) {
+                writeQuietly(new File(this.leaseDir, name + DONE_SUFFIX), this.nodeName + "\n" + key(file) + "\n");
+                failedMarker.delete();
+            } else {
+                writeQuietly(failedMarker, this.nodeName + "\n" + key(file) + "\n");
+            }
+            if (owner != null) {
+                lease.delete();
+            } else {
+                CloudPostTool.warn("[" + this.nodeName + "] Cannot read lease on " + key(file) + ", leaving it to go stale");
+            }
+        }
+        (succeeded ? this.doneCount : this.failedCount).incrementAndGet();
+    }
+
+    /**
+     * Starts the heartbeat which refreshes the held leases and reports the progress of this node
+     */
+    public void start() {
+        long interval = Math.max(MIN_HEARTBEAT_INTERVAL_MILLIS, Math.min(MAX_HEARTBEAT_INTERVAL_MILLIS, this.leaseTimeoutMillis / 3));
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor();
+        this.heartbeat.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                heartbeat();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (this.heartbeat != null) this.heartbeat.shutdownNow();
+        heartbeat();
+    }
+
+    /**
+     * @return the number of files this node has posted
+     */
+    public int getDoneCount() {
+        return this.doneCount.get();
+    }
+
+    /**
+     * @return the number of files this node failed to post
+     */
+    public int getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    public String getNodeName() {
+        return this.nodeName;
+    }
+
+    /**
+     * @return how far along this node is
+     */
+    public String getProgress() {
+        return "[" + this.nodeName + "] " + this.claimedCount.get() + " files claimed, " + this.doneCount.get() + " done, "
+                + this.failedCount.get() + " failed, " + this.lostCount.get() + " lost, " + this.heldLeases.size() + " leases held";
+    }
+
+    private void heartbeat() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<File, String> heldLease : this.heldLeases.entrySet()) {
+            File lease = heldLease.getKey();
+            String owner = readOwner(lease);
+            if (owner == null) {
+                continue; //missing or unreadable for now, e.g. moved away by another node checking it; re-checked next beat
+            }
+            if (heldLease.getValue().equals(owner)) {
+                lease.setLastModified(now);
+                //checked again, as the lease may have been taken over between reading and refreshing it
+                owner = readOwner(lease);
+            }
+            if (owner != null && !heldLease.getValue().equals(owner) && this.heldLeases.remove(lease) != null) {
+                //taken over after this node stalled, stop refreshing the new owner's lease
+                CloudPostTool.warn("[" + this.nodeName + "] Lost lease " + lease.getName());
+                this.lostCount.incrementAndGet();
+            }
+        }
+        String progress = getProgress();
+        CloudPostTool.info(progress);
+        if (usesLeases()) {
+            //publish progress next to the leases, so the progress of all nodes can be followed from the shared filesystem
+            File progressFile = new File(this.leaseDir, "node-" + this.nodeId + ".progress");
+            File tmpFile = new File(this.leaseDir, "node-" + this.nodeId + ".progress.tmp");
+            writeQuietly(tmpFile, progress + "\nupdated " + new Date(now) + "\n");
+            progressFile.delete();
+            tmpFile.renameTo(progressFile);
+        }
+    }
+
+    private boolean isStale(File lease) {
+        long lastModified = lease.lastModified();
+        return lastModified > 0 && System.currentTimeMillis() - lastModified > this.leaseTimeoutMillis;
+    }
+
+    /**
+     * @return the path of the file as given on the command line, identical on all nodes
+     */
+    private static String key(File file) {
+        return file.getPath().replace(File.separatorChar, '/');
+    }
+
+    private static String leaseName(File file) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key(file).getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) name.append(String.format("%02x", b));
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //MD5 is supported by every JVM
+        }
+    }
+
+    /**
+     * @return the first line of a lease file, or null if it cannot be read
+     */
+    private static String readOwner(File lease) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(lease), StandardCharsets.UTF_8))) {
+            String owner = reader.readLine();
+            return owner == null ? "" : owner;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the first line of a lease file, or null if it still cannot be read after a few short retries
+     */
+    private static String readOwnerWithRetry(File lease) {
+        String owner = readOwner(lease);
+        for (int attempt = 1; owner == null && attempt < READ_OWNER_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(READ_OWNER_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            owner = readOwner(lease);
+        }
+        return owner;
+    }
+
+    private static void writeQuietly(File file, String content) {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            CloudPostTool.warn("Cannot write " + file + ": " + e);
+        }
+    }
+}